@@ -28,9 +28,11 @@ import lombok.extern.slf4j.Slf4j;
 import me.ahornyai.imageshelter.config.Config;
 import me.ahornyai.imageshelter.config.ConfigHandler;
 import me.ahornyai.imageshelter.http.HttpHandler;
+import me.ahornyai.imageshelter.media.MetadataHandler;
 import org.apache.commons.lang3.time.StopWatch;
 import org.slf4j.helpers.NOPLogger;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
@@ -41,8 +43,13 @@ public class ImageShelter {
     private static ImageShelter instance;
     private final HttpHandler httpHandler;
     private ConfigHandler configHandler;
+    private final MetadataHandler metadataHandler;
 
     public ImageShelter() {
+        this(new File("config.toml"));
+    }
+
+    public ImageShelter(File configFile) {
         instance = this;
         StopWatch startWatch = StopWatch.createStarted();
 
@@ -50,13 +57,14 @@ public class ImageShelter {
 
         try {
             log.info("Loading config...");
-            this.configHandler = new ConfigHandler();
+            this.configHandler = new ConfigHandler(configFile);
         } catch (IOException ex) {
             log.error("Failed to load config. Stopping...");
             ex.printStackTrace();
             System.exit(1);
         }
 
+        this.metadataHandler = new MetadataHandler(getConfig().getMetadataFolder());
         this.httpHandler = new HttpHandler(getConfig().getPort());
 
         Runtime.getRuntime().addShutdownHook(new Thread(this::onStop));
@@ -43,9 +43,27 @@ public class Config {
 
     private String uploadFolder = "uploads";
 
+    private String metadataFolder = "metadata";
+
     private boolean encrypt = true;
 
     private boolean backupKeys = false;
 
     private boolean listingEnabled = false;
+
+    private Integer maxConcurrentUploads = 4;
+
+    private Integer maxConcurrentUploadsWhileReading = 1;
+
+    private Long maxUploadSize = 512L * 1024 * 1024;
+
+    private Long maxUploadBytesInFlight = 1024L * 1024 * 1024;
+
+    private Integer maxUploadSeconds = 600;
+
+    private Integer maxQueuedUploads = 8;
+
+    private Integer uploadQueueTimeoutSeconds = 2;
+
+    private Integer uploadRetryAfterSeconds = 10;
 }
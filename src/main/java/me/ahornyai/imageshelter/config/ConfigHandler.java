@@ -31,15 +31,19 @@ import java.io.IOException;
 
 @Getter
 public class ConfigHandler {
+    private final File file;
     private Config config;
 
     public ConfigHandler() throws IOException {
+        this(new File("config.toml"));
+    }
+
+    public ConfigHandler(File file) throws IOException {
+        this.file = file;
         loadOrSave();
     }
 
     public void loadOrSave() throws IOException {
-        File file = new File("config.toml");
-
         try {
             this.config = new Toml().read(file).to(Config.class);
         } catch (Exception ex) {
@@ -25,17 +25,25 @@ package me.ahornyai.imageshelter.http;
 import com.google.gson.Gson;
 import io.javalin.Javalin;
 import io.javalin.plugin.json.JavalinJson;
+import lombok.Getter;
 import me.ahornyai.imageshelter.ImageShelter;
+import me.ahornyai.imageshelter.config.Config;
 import me.ahornyai.imageshelter.http.endpoints.IndexEndpoint;
 import me.ahornyai.imageshelter.http.endpoints.ListEndpoint;
+import me.ahornyai.imageshelter.http.endpoints.StatusEndpoint;
 import me.ahornyai.imageshelter.http.endpoints.UploadEndpoint;
 import me.ahornyai.imageshelter.http.endpoints.ViewEndpoint;
 
 public class HttpHandler {
     private static final Gson GSON = new Gson();
     private final Javalin javalin;
+    @Getter
+    private final UploadLimiter uploadLimiter;
 
     public HttpHandler(int port) {
+        Config config = ImageShelter.getInstance().getConfig();
+        this.uploadLimiter = new UploadLimiter(config.getMaxConcurrentUploads(), config.getMaxConcurrentUploadsWhileReading(), config.getMaxUploadBytesInFlight(),
+                config.getMaxQueuedUploads(), config.getUploadQueueTimeoutSeconds() * 1000L);
         this.javalin = Javalin.create().start(port);
 
         setupJavalinJson();
@@ -48,11 +56,13 @@ public class HttpHandler {
     }
 
     private void makeEndpoints() {
+        //Has to be registered before the view endpoint, otherwise it would be matched as a file
+        javalin.get("/status", new StatusEndpoint(uploadLimiter));
         if (ImageShelter.getInstance().getConfig().isEncrypt())
-            javalin.get("/:file/:key", new ViewEndpoint());
+            javalin.get("/:file/:key", new ViewEndpoint(uploadLimiter));
         else
-            javalin.get("/:file/", new ViewEndpoint());
-        javalin.post("/upload", new UploadEndpoint());
+            javalin.get("/:file/", new ViewEndpoint(uploadLimiter));
+        javalin.post("/upload", new UploadEndpoint(uploadLimiter));
         javalin.get("/", new IndexEndpoint());
         if (ImageShelter.getInstance().getConfig().isListingEnabled()) javalin.get("/list", new ListEndpoint());
     }
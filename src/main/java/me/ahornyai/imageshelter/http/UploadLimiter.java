@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.http;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+
+public class UploadLimiter {
+    @Getter
+    private final int maxConcurrentUploads;
+    @Getter
+    private final int maxConcurrentUploadsWhileReading;
+    @Getter
+    private final long maxBytesInFlight;
+    @Getter
+    private final int maxQueuedUploads;
+    private final long queueTimeoutMillis;
+
+    private int activeUploads;
+    private long bytesInFlight;
+    private int queuedUploads;
+    private int activeReads;
+    private long admittedUploads;
+    private long rejectedUploads;
+
+    public UploadLimiter(int maxConcurrentUploads, int maxConcurrentUploadsWhileReading, long maxBytesInFlight, int maxQueuedUploads, long queueTimeoutMillis) {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.maxConcurrentUploadsWhileReading = maxConcurrentUploadsWhileReading;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.maxQueuedUploads = maxQueuedUploads;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    //An upload bigger than the byte limit could never be admitted
+    public boolean accepts(long bytes) {
+        return bytes <= maxBytesInFlight;
+    }
+
+    //Waits in a bounded queue for a slot if it doesn't fit, returns false right away if the queue is full, or after the timeout
+    public synchronized boolean tryAcquire(long bytes) throws InterruptedException {
+        if (!accepts(bytes)) {
+            rejectedUploads++;
+            return false;
+        }
+
+        //Anything that fits right now is admitted, even past waiting bigger uploads
+        if (fits(bytes)) {
+            admit(bytes);
+            return true;
+        }
+
+        if (queuedUploads >= maxQueuedUploads) {
+            rejectedUploads++;
+            return false;
+        }
+
+        queuedUploads++;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+            while (!fits(bytes)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejectedUploads++;
+                    return false;
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            admit(bytes);
+            return true;
+        } finally {
+            queuedUploads--;
+        }
+    }
+
+    public synchronized void release(long bytes) {
+        activeUploads--;
+        bytesInFlight -= bytes;
+        notifyAll();
+    }
+
+    //Reads are never limited, but fewer uploads are admitted while they are running
+    public synchronized void readStarted() {
+        activeReads++;
+    }
+
+    public synchronized void readFinished() {
+        activeReads--;
+        notifyAll();
+    }
+
+    public synchronized int getActiveUploads() {
+        return activeUploads;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    public synchronized int getQueuedUploads() {
+        return queuedUploads;
+    }
+
+    public synchronized int getActiveReads() {
+        return activeReads;
+    }
+
+    public synchronized long getAdmittedUploads() {
+        return admittedUploads;
+    }
+
+    public synchronized long getRejectedUploads() {
+        return rejectedUploads;
+    }
+
+    private boolean fits(long bytes) {
+        int limit = activeReads > 0 ? maxConcurrentUploadsWhileReading : maxConcurrentUploads;
+
+        return activeUploads < limit && bytesInFlight + bytes <= maxBytesInFlight;
+    }
+
+    private void admit(long bytes) {
+        activeUploads++;
+        bytesInFlight += bytes;
+        admittedUploads++;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.http.endpoints;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import lombok.RequiredArgsConstructor;
+import me.ahornyai.imageshelter.ImageShelter;
+import me.ahornyai.imageshelter.http.UploadLimiter;
+import me.ahornyai.imageshelter.http.responses.ErrorResponse;
+import me.ahornyai.imageshelter.http.responses.UploadStatusResponse;
+import org.apache.commons.lang3.ArrayUtils;
+import org.jetbrains.annotations.NotNull;
+
+@RequiredArgsConstructor
+public class StatusEndpoint implements Handler {
+    private final UploadLimiter uploadLimiter;
+
+    @Override
+    public void handle(@NotNull Context ctx) {
+        //The limits and the live counts are only for the server owner
+        if (!ArrayUtils.contains(ImageShelter.getInstance().getConfig().getSecrets(), ctx.header("X-Secret"))) {
+            ctx.json(new ErrorResponse("INVALID_SECRET", "Secret is not valid.")).status(403);
+            return;
+        }
+
+        ctx.json(new UploadStatusResponse(uploadLimiter.getActiveUploads(), uploadLimiter.getMaxConcurrentUploads(),
+                uploadLimiter.getMaxConcurrentUploadsWhileReading(), uploadLimiter.getActiveReads(),
+                uploadLimiter.getBytesInFlight(), uploadLimiter.getMaxBytesInFlight(),
+                uploadLimiter.getQueuedUploads(), uploadLimiter.getMaxQueuedUploads(),
+                uploadLimiter.getAdmittedUploads(), uploadLimiter.getRejectedUploads()));
+    }
+}
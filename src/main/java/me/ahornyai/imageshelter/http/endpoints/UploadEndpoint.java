@@ -25,16 +25,20 @@ package me.ahornyai.imageshelter.http.endpoints;
 import io.javalin.http.Context;
 import io.javalin.http.Handler;
 import io.javalin.http.UploadedFile;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import me.ahornyai.imageshelter.ImageShelter;
+import me.ahornyai.imageshelter.http.UploadLimiter;
 import me.ahornyai.imageshelter.http.responses.ErrorResponse;
 import me.ahornyai.imageshelter.http.responses.SuccessUploadResponse;
+import me.ahornyai.imageshelter.media.MediaMetadata;
+import me.ahornyai.imageshelter.media.MediaSniffer;
 import me.ahornyai.imageshelter.utils.AESUtil;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.eclipse.jetty.server.Request;
 import org.jetbrains.annotations.NotNull;
 
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import java.io.*;
 import java.net.URLEncoder;
@@ -44,11 +48,23 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.GZIPOutputStream;
 
 @Slf4j
+@RequiredArgsConstructor
 public class UploadEndpoint implements Handler {
     private static final String[] ALLOWED_EXTENSIONS = ImageShelter.getInstance().getConfig().getAllowedExtensions();
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upload-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final UploadLimiter uploadLimiter;
 
     @Override
     public void handle(@NotNull Context ctx) {
@@ -58,20 +74,72 @@ public class UploadEndpoint implements Handler {
             return;
         }
 
-        //Loading the file and the secret from the request
-        UploadedFile uploadedFile = ctx.uploadedFile("image");
-        String secret = ctx.formParam("secret");
+        //A secret in the header is checked before the body is read, the form field can only be checked after admission
+        String headerSecret = ctx.header("X-Secret");
+        if (headerSecret != null && !ArrayUtils.contains(ImageShelter.getInstance().getConfig().getSecrets(), headerSecret)) {
+            ctx.json(new ErrorResponse("INVALID_SECRET", "Secret is not valid.")).status(403);
+            return;
+        }
 
-        if (secret == null) {
-            ctx.json(new ErrorResponse("MISSING_SECRET", "Secret not provided.")).status(400);
+        //The size has to be known before the body is read, so the in-flight bytes can be limited
+        long contentLength = ctx.req.getContentLengthLong();
+        if (contentLength < 0) {
+            ctx.json(new ErrorResponse("LENGTH_REQUIRED", "The request's Content-Length is not provided.")).status(411);
             return;
         }
 
-        if (!ArrayUtils.contains(ImageShelter.getInstance().getConfig().getSecrets(), secret)) {
-            ctx.json(new ErrorResponse("INVALID_SECRET", "Secret is not valid.")).status(403);
+        if (contentLength > ImageShelter.getInstance().getConfig().getMaxUploadSize() || !uploadLimiter.accepts(contentLength)) {
+            ctx.json(new ErrorResponse("TOO_LARGE", "The upload is too large.")).status(413);
+            return;
+        }
+
+        boolean admitted;
+        try {
+            admitted = uploadLimiter.tryAcquire(contentLength);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+
+        if (!admitted) {
+            ctx.header("Retry-After", String.valueOf(ImageShelter.getInstance().getConfig().getUploadRetryAfterSeconds()));
+            ctx.json(new ErrorResponse("TOO_MANY_UPLOADS", "Too many uploads are in progress, try again later.")).status(503);
             return;
         }
 
+        //Slow uploads are aborted, so they can't hold their slot forever
+        int maxUploadSeconds = ImageShelter.getInstance().getConfig().getMaxUploadSeconds();
+        ScheduledFuture<?> timeout = TIMEOUT_SCHEDULER.schedule(() -> {
+            log.warn("Aborting upload, it took longer than " + maxUploadSeconds + " seconds.");
+            Request.getBaseRequest(ctx.req).getHttpChannel().abort(new TimeoutException("Upload took longer than " + maxUploadSeconds + " seconds"));
+        }, maxUploadSeconds, TimeUnit.SECONDS);
+
+        try {
+            upload(ctx, headerSecret != null);
+        } finally {
+            timeout.cancel(false);
+            uploadLimiter.release(contentLength);
+        }
+    }
+
+    private void upload(Context ctx, boolean authenticated) {
+        //Loading the file and the secret from the request
+        UploadedFile uploadedFile = ctx.uploadedFile("image");
+
+        if (!authenticated) {
+            String secret = ctx.formParam("secret");
+
+            if (secret == null) {
+                ctx.json(new ErrorResponse("MISSING_SECRET", "Secret not provided.")).status(400);
+                return;
+            }
+
+            if (!ArrayUtils.contains(ImageShelter.getInstance().getConfig().getSecrets(), secret)) {
+                ctx.json(new ErrorResponse("INVALID_SECRET", "Secret is not valid.")).status(403);
+                return;
+            }
+        }
+
         if (uploadedFile == null) {
             ctx.json(new ErrorResponse("MISSING_IMAGE", "Image not provided.")).status(400);
             return;
@@ -98,23 +166,26 @@ public class UploadEndpoint implements Handler {
             return;
         }
 
+        File outputFile = new File(ImageShelter.getInstance().getConfig().getUploadFolder(), name);
         try {
-            File outputFile = new File(ImageShelter.getInstance().getConfig().getUploadFolder(), name);
             outputFile.getParentFile().mkdirs();
             outputFile.createNewFile();
 
-            //Allow uploading giant files, without reading them fully into the memory
-            InputStream inputStream = uploadedFile.getContent();
-            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile));
+            //Allow uploading giant files, without reading them fully into the memory, the media metadata is collected while streaming
+            MediaMetadata metadata;
+            try (MediaSniffer inputStream = new MediaSniffer(uploadedFile.getContent());
+                 OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                OutputStream outputStream = fileStream;
 
-            //Add encryption and compression if necessary
-            if (ImageShelter.getInstance().getConfig().isEncrypt())
-                outputStream = new CipherOutputStream(outputStream, AESUtil.getEncryptCipher(key));
-            if (shouldCompress) outputStream = new GZIPOutputStream(outputStream);
-            IOUtils.copy(inputStream, outputStream, 4096);
+                //Add encryption and compression if necessary
+                if (ImageShelter.getInstance().getConfig().isEncrypt())
+                    outputStream = AESUtil.getEncryptStream(outputStream, key);
+                if (shouldCompress) outputStream = new GZIPOutputStream(outputStream);
+                IOUtils.copy(inputStream, outputStream, 4096);
+                outputStream.close();
 
-            outputStream.close();
-            inputStream.close();
+                metadata = inputStream.toMetadata(Files.probeContentType(Paths.get(rawName + uploadedFile.getExtension())));
+            }
 
             //Backup keys if necessary
             if (ImageShelter.getInstance().getConfig().isBackupKeys()) {
@@ -122,12 +193,28 @@ public class UploadEndpoint implements Handler {
                     Files.createDirectory(Paths.get("key_backup"));
                 Files.write(Paths.get("key_backup", rawName + ".txt"), AESUtil.getKeyAsString(key).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE);
             }
-            if (ImageShelter.getInstance().getConfig().isEncrypt())
-                ctx.json(new SuccessUploadResponse(URLEncoder.encode(name, "UTF-8"), URLEncoder.encode(AESUtil.getKeyAsString(key), "UTF-8")));
-            else
-                ctx.json(new SuccessUploadResponse(URLEncoder.encode(name, "UTF-8")));
+
+            SuccessUploadResponse response;
+            if (ImageShelter.getInstance().getConfig().isEncrypt()) {
+                response = new SuccessUploadResponse(URLEncoder.encode(name, "UTF-8"), URLEncoder.encode(AESUtil.getKeyAsString(key), "UTF-8"));
+
+                //The sidecar is not encrypted, so only what serving the file needs is kept
+                metadata = new MediaMetadata(metadata.getContentType(), metadata.getOriginalSize(), null, null, null);
+            } else {
+                response = new SuccessUploadResponse(URLEncoder.encode(name, "UTF-8"));
+            }
+
+            //Stored last, so a failed upload can't leave a sidecar behind, the view endpoint can still probe without it
+            try {
+                ImageShelter.getInstance().getMetadataHandler().save(name, metadata);
+            } catch (Exception ex) {
+                log.error("Metadata saving error:", ex);
+            }
+
+            ctx.json(response);
         } catch (Exception ex) {
             log.error("File saving error:", ex);
+            outputFile.delete();
             ctx.json(new ErrorResponse("UNEXPECTED_ERROR", "Unexpected error with file saving. If you are the server owner please open a github issue with the exception."));
         }
     }
@@ -24,24 +24,30 @@ package me.ahornyai.imageshelter.http.endpoints;
 
 import io.javalin.http.Context;
 import io.javalin.http.Handler;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import me.ahornyai.imageshelter.ImageShelter;
+import me.ahornyai.imageshelter.http.UploadLimiter;
 import me.ahornyai.imageshelter.http.responses.ErrorResponse;
+import me.ahornyai.imageshelter.media.MediaMetadata;
 import me.ahornyai.imageshelter.utils.AESUtil;
+import org.apache.commons.io.IOUtils;
 import org.jetbrains.annotations.NotNull;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.CipherInputStream;
 import javax.crypto.SecretKey;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.util.zip.GZIPInputStream;
 
 @Slf4j
+@RequiredArgsConstructor
 public class ViewEndpoint implements Handler {
     private static String EXPECTED_PATH = null;
+    private final UploadLimiter uploadLimiter;
 
     @Override
     public void handle(@NotNull Context ctx) throws IOException {
@@ -67,36 +73,68 @@ public class ViewEndpoint implements Handler {
             return;
         }
 
-        String contentType = Files.probeContentType(Paths.get(file.getAbsolutePath().endsWith(".gz") ? file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 3) : file.getAbsolutePath()));
+        //Files uploaded before the metadata was stored still have to be probed
+        MediaMetadata metadata = ImageShelter.getInstance().getMetadataHandler().get(file.getName());
+        String contentType = metadata != null ? metadata.getContentType() : Files.probeContentType(Paths.get(file.getAbsolutePath().endsWith(".gz") ? file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 3) : file.getAbsolutePath()));
         if (contentType != null) {
             ctx.contentType(contentType);
         }
 
-        try {
-            InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        SecretKey secretKey = null;
+        if (ImageShelter.getInstance().getConfig().isEncrypt()) {
+            try {
+                String keyParam = ctx.pathParam("key");
+                secretKey = AESUtil.getKeyFromString(keyParam);
+            } catch (Exception ex) {
+                ctx.json(new ErrorResponse("BAD_KEY_FORMAT", "Bad key format."));
+                return;
+            }
+        }
+
+        try (InputStream fileStream = new BufferedInputStream(new FileInputStream(file))) {
+            InputStream inputStream = fileStream;
             boolean shouldDecompress = file.getName().endsWith(".gz");
 
-            if (ImageShelter.getInstance().getConfig().isEncrypt()) {
-                SecretKey secretKey;
-                try {
-                    String keyParam = ctx.pathParam("key");
-                    secretKey = AESUtil.getKeyFromString(keyParam);
-                } catch (Exception ex) {
-                    ctx.json(new ErrorResponse("BAD_KEY_FORMAT", "Bad key format."));
-                    return;
-                }
-
-                inputStream = new CipherInputStream(inputStream, AESUtil.getDecryptCipher(secretKey));
-            }
+            if (secretKey != null) inputStream = AESUtil.getDecryptStream(inputStream, secretKey);
             if (shouldDecompress) inputStream = new GZIPInputStream(inputStream);
-            ctx.result(inputStream);
+            write(ctx, file, inputStream, metadata != null ? metadata.getOriginalSize() : -1);
         } catch (Exception ex) {
             if (ex instanceof InvalidKeyException || ex instanceof BadPaddingException) {
                 ctx.json(new ErrorResponse("INVALID_KEY", "Invalid key provided!")).status(400);
+            } else if (isAuthenticationFailure(ex)) {
+                ctx.json(new ErrorResponse("FILE_READ_ERROR", "Could not read the file!")).status(500);
+                log.error("File " + file.getName() + " failed authentication, it is corrupted or was modified:", ex);
             } else {
                 ctx.json(new ErrorResponse("FILE_READ_ERROR", "Could not read the file!")).status(500);
                 log.error("File read error:", ex);
             }
         }
     }
+
+    //Written to the response directly, because Javalin's dynamic compression would make the Content-Length wrong,
+    //and the upload limiter has to know about the read until the whole file is sent
+    private void write(Context ctx, File file, InputStream inputStream, long length) {
+        if (length >= 0) ctx.res.setContentLengthLong(length);
+
+        uploadLimiter.readStarted();
+        try (InputStream in = inputStream) {
+            IOUtils.copy(in, ctx.res.getOutputStream(), 8192);
+        } catch (IOException ex) {
+            //A modified segment looks the same as a client disconnect, unless the cause is checked
+            if (isAuthenticationFailure(ex))
+                log.error("File " + file.getName() + " failed authentication while streaming, it is corrupted or was modified:", ex);
+            else
+                log.warn("File streaming interrupted: " + ex.getMessage());
+        } finally {
+            uploadLimiter.readFinished();
+        }
+    }
+
+    private boolean isAuthenticationFailure(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GeneralSecurityException) return true;
+        }
+
+        return false;
+    }
 }
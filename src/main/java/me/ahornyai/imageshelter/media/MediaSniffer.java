@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.media;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class MediaSniffer extends FilterInputStream {
+    private static final int HEAD_SIZE = 64 * 1024;
+    private static final int MOOV_CAPTURE_SIZE = 4096;
+
+    private final byte[] head = new byte[HEAD_SIZE];
+    private int headLength;
+    private long position;
+
+    //Top-level ISO BMFF (mp4, mov, 3gp) box tracking, so the duration is found even if the moov box is at the end
+    private boolean tracking = true;
+    private long boxStart;
+    private final byte[] boxHeader = new byte[16];
+    private int boxHeaderFill;
+    private int boxHeaderSize = 8;
+    private byte[] moov;
+    private int moovFill;
+
+    public MediaSniffer(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) observe(new byte[]{(byte) b}, 0, 1);
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) observe(b, off, read);
+
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+
+        //Every byte has to be seen, so skipping is done by reading
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        int read;
+        while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0)
+            skipped += read;
+
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    //Should be called after the stream is fully consumed, the fallback is used for files without magic bytes (plain text for example)
+    public MediaMetadata toMetadata(String fallbackContentType) {
+        String contentType = sniffContentType();
+        int[] dimensions = null;
+        Long duration = null;
+
+        if (contentType == null) {
+            contentType = fallbackContentType;
+        } else if (contentType.startsWith("image/")) {
+            dimensions = readImageDimensions(contentType);
+        } else if (moov != null && moovFill == moov.length) {
+            duration = readMovieDuration();
+        }
+
+        return new MediaMetadata(contentType, position,
+                dimensions == null ? null : dimensions[0], dimensions == null ? null : dimensions[1], duration);
+    }
+
+    private void observe(byte[] b, int off, int len) {
+        if (position < HEAD_SIZE) {
+            int n = (int) Math.min(len, HEAD_SIZE - position);
+            System.arraycopy(b, off, head, (int) position, n);
+            headLength += n;
+        }
+        if (tracking) trackBoxes(b, off, len);
+
+        position += len;
+    }
+
+    private void trackBoxes(byte[] b, int off, int len) {
+        long end = position + len;
+
+        while (tracking) {
+            if (boxHeaderFill < boxHeaderSize) {
+                long from = boxStart + boxHeaderFill;
+                if (from >= end) return;
+
+                int n = (int) Math.min(boxHeaderSize - boxHeaderFill, end - from);
+                System.arraycopy(b, off + (int) (from - position), boxHeader, boxHeaderFill, n);
+                boxHeaderFill += n;
+                if (boxHeaderFill < boxHeaderSize) return;
+
+                long size = readUInt32(boxHeader, 0);
+                String type = new String(boxHeader, 4, 4, StandardCharsets.US_ASCII);
+
+                if (boxStart == 0 && !type.equals("ftyp")) {
+                    tracking = false;
+                    return;
+                }
+                //64 bit box size follows the type
+                if (size == 1 && boxHeaderSize == 8) {
+                    boxHeaderSize = 16;
+                    continue;
+                }
+                if (boxHeaderSize == 16) size = readUInt32(boxHeader, 8) << 32 | readUInt32(boxHeader, 12);
+                if (size < boxHeaderSize) {
+                    tracking = false;
+                    return;
+                }
+
+                if (type.equals("moov")) {
+                    moov = new byte[(int) Math.min(MOOV_CAPTURE_SIZE, size - boxHeaderSize)];
+                } else {
+                    boxStart += size;
+                    boxHeaderFill = 0;
+                    boxHeaderSize = 8;
+                }
+            } else {
+                long from = boxStart + boxHeaderSize + moovFill;
+                if (from >= end) return;
+
+                int n = (int) Math.min(moov.length - moovFill, end - from);
+                System.arraycopy(b, off + (int) (from - position), moov, moovFill, n);
+                moovFill += n;
+                if (moovFill == moov.length) tracking = false;
+                return;
+            }
+        }
+    }
+
+    private String sniffContentType() {
+        if (startsWith(0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return "image/png";
+        if (startsWith(0, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (startsWith(0, 'G', 'I', 'F', '8')) return "image/gif";
+        if (isBmp()) return "image/bmp";
+        if (startsWith(0, 'R', 'I', 'F', 'F')) {
+            if (startsWith(8, 'W', 'E', 'B', 'P')) return "image/webp";
+            if (startsWith(8, 'W', 'A', 'V', 'E')) return "audio/wav";
+            if (startsWith(8, 'A', 'V', 'I', ' ')) return "video/x-msvideo";
+        }
+        if (startsWith(4, 'f', 't', 'y', 'p')) {
+            if (startsWith(8, 'q', 't', ' ', ' ')) return "video/quicktime";
+            if (startsWith(8, '3', 'g', '2')) return "video/3gpp2";
+            if (startsWith(8, '3', 'g')) return "video/3gpp";
+            if (startsWith(8, 'M', '4', 'A', ' ') || startsWith(8, 'M', '4', 'B', ' ')) return "audio/mp4";
+            //Still images (HEIF/AVIF) use the same container
+            if (startsWith(8, 'a', 'v', 'i', 'f') || startsWith(8, 'a', 'v', 'i', 's')) return "image/avif";
+            if (startsWith(8, 'h', 'e', 'i', 'c') || startsWith(8, 'h', 'e', 'i', 'x') || startsWith(8, 'h', 'e', 'v', 'c')
+                    || startsWith(8, 'h', 'e', 'v', 'x') || startsWith(8, 'm', 'i', 'f', '1') || startsWith(8, 'm', 's', 'f', '1'))
+                return "image/heic";
+            return "video/mp4";
+        }
+        if (startsWith(0, 0x1A, 0x45, 0xDF, 0xA3))
+            return indexOf("webm".getBytes(StandardCharsets.US_ASCII), 64) != -1 ? "video/webm" : "video/x-matroska";
+        if (startsWith(0, 'F', 'L', 'V', 0x01)) return "video/x-flv";
+        if (startsWith(0, 0x00, 0x00, 0x01, 0xBA)) return "video/mpeg";
+        if (startsWith(0, 'O', 'g', 'g', 'S')) return "audio/ogg";
+        if (startsWith(0, 'f', 'L', 'a', 'C')) return "audio/flac";
+        if (startsWith(0, 'I', 'D', '3') || startsWith(0, 0xFF, 0xFB)) return "audio/mpeg";
+        if (startsWith(0, 'P', 'K', 0x03, 0x04)) return "application/zip";
+        if (startsWith(0, 'R', 'a', 'r', '!', 0x1A, 0x07)) return "application/x-rar-compressed";
+        if (startsWith(0, 0x1F, 0x8B)) return "application/gzip";
+        if (startsWith(0, '%', 'P', 'D', 'F', '-')) return "application/pdf";
+
+        return null;
+    }
+
+    //"BM" alone is too common at the start of text files, so the reserved bytes and the DIB header size are checked too
+    private boolean isBmp() {
+        if (headLength < 26 || !startsWith(0, 'B', 'M') || !startsWith(6, 0, 0, 0, 0)) return false;
+
+        int dibHeaderSize = readInt32LE(head, 14);
+        return dibHeaderSize == 12 || dibHeaderSize == 40 || dibHeaderSize == 52 || dibHeaderSize == 56
+                || dibHeaderSize == 108 || dibHeaderSize == 124;
+    }
+
+    private int[] readImageDimensions(String contentType) {
+        switch (contentType) {
+            case "image/png":
+                if (headLength < 24) return null;
+                return new int[]{(int) readUInt32(head, 16), (int) readUInt32(head, 20)};
+            case "image/gif":
+                if (headLength < 10) return null;
+                return new int[]{readUInt16LE(head, 6), readUInt16LE(head, 8)};
+            case "image/bmp":
+                //BITMAPCOREHEADER has 16 bit sizes, every later header has 32 bit ones, the height is negative for top-down images
+                if (readInt32LE(head, 14) == 12) return new int[]{readUInt16LE(head, 18), readUInt16LE(head, 20)};
+                return new int[]{readInt32LE(head, 18), Math.abs(readInt32LE(head, 22))};
+            case "image/webp":
+                return readWebpDimensions();
+            case "image/jpeg":
+                return readJpegDimensions();
+            default:
+                return null;
+        }
+    }
+
+    private int[] readWebpDimensions() {
+        if (headLength < 30) return null;
+
+        if (startsWith(12, 'V', 'P', '8', ' '))
+            return new int[]{readUInt16LE(head, 26) & 0x3FFF, readUInt16LE(head, 28) & 0x3FFF};
+        if (startsWith(12, 'V', 'P', '8', 'L')) {
+            int b0 = head[21] & 0xFF, b1 = head[22] & 0xFF, b2 = head[23] & 0xFF, b3 = head[24] & 0xFF;
+            return new int[]{1 + (b0 | (b1 & 0x3F) << 8), 1 + (b1 >> 6 | b2 << 2 | (b3 & 0x0F) << 10)};
+        }
+        if (startsWith(12, 'V', 'P', '8', 'X'))
+            return new int[]{1 + readUInt24LE(head, 24), 1 + readUInt24LE(head, 27)};
+
+        return null;
+    }
+
+    private int[] readJpegDimensions() {
+        int i = 2;
+
+        while (i + 9 < headLength) {
+            if ((head[i] & 0xFF) != 0xFF) return null;
+
+            int marker = head[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                i++;
+                continue;
+            }
+            //SOF0-SOF15, except DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC)
+                return new int[]{readUInt16(head, i + 7), readUInt16(head, i + 5)};
+            //Start of scan, the frame header should have been before it
+            if (marker == 0xDA) return null;
+
+            i += 2 + readUInt16(head, i + 2);
+        }
+
+        return null;
+    }
+
+    private Long readMovieDuration() {
+        int i = 0;
+
+        while (i + 8 <= moov.length) {
+            long size = readUInt32(moov, i);
+            if (new String(moov, i + 4, 4, StandardCharsets.US_ASCII).equals("mvhd")) {
+                int version = moov[i + 8] & 0xFF;
+                long timescale;
+                long duration;
+
+                if (version == 1 && i + 40 <= moov.length) {
+                    timescale = readUInt32(moov, i + 28);
+                    duration = readUInt32(moov, i + 32) << 32 | readUInt32(moov, i + 36);
+                } else if (version == 0 && i + 28 <= moov.length) {
+                    timescale = readUInt32(moov, i + 20);
+                    duration = readUInt32(moov, i + 24);
+                } else {
+                    return null;
+                }
+
+                //A 64 bit duration can be negative or overflow, those are treated as unknown
+                if (timescale == 0 || duration < 0) return null;
+                try {
+                    return Math.multiplyExact(duration, 1000L) / timescale;
+                } catch (ArithmeticException ex) {
+                    return null;
+                }
+            }
+            if (size < 8 || size > moov.length - i) return null;
+
+            i += (int) size;
+        }
+
+        return null;
+    }
+
+    private boolean startsWith(int offset, int... bytes) {
+        if (offset + bytes.length > headLength) return false;
+
+        for (int i = 0; i < bytes.length; i++) {
+            if ((head[offset + i] & 0xFF) != bytes[i]) return false;
+        }
+
+        return true;
+    }
+
+    private int indexOf(byte[] needle, int limit) {
+        int max = Math.min(limit, headLength) - needle.length;
+
+        outer:
+        for (int i = 0; i <= max; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (head[i + j] != needle[j]) continue outer;
+            }
+
+            return i;
+        }
+
+        return -1;
+    }
+
+    private static long readUInt32(byte[] b, int i) {
+        return (b[i] & 0xFFL) << 24 | (b[i + 1] & 0xFFL) << 16 | (b[i + 2] & 0xFFL) << 8 | (b[i + 3] & 0xFFL);
+    }
+
+    private static int readUInt16(byte[] b, int i) {
+        return (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+    }
+
+    private static int readUInt16LE(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8;
+    }
+
+    private static int readUInt24LE(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16;
+    }
+
+    private static int readInt32LE(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.media;
+
+import com.google.gson.Gson;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Slf4j
+public class MetadataHandler {
+    private static final Gson GSON = new Gson();
+    private static final int CACHE_SIZE = 4096;
+
+    private final Path folder;
+    private final Map<String, MediaMetadata> cache = Collections.synchronizedMap(new LinkedHashMap<String, MediaMetadata>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MediaMetadata> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+
+    public MetadataHandler(String folder) {
+        this.folder = Paths.get(folder);
+    }
+
+    public void save(String fileName, MediaMetadata metadata) throws IOException {
+        Files.createDirectories(folder);
+        Files.write(getSidecar(fileName), GSON.toJson(metadata).getBytes(StandardCharsets.UTF_8));
+
+        cache.put(fileName, metadata);
+    }
+
+    //Returns null for files uploaded before metadata was stored
+    public MediaMetadata get(String fileName) {
+        MediaMetadata metadata = cache.get(fileName);
+        if (metadata != null) return metadata;
+
+        Path sidecar = getSidecar(fileName);
+        if (!Files.exists(sidecar)) return null;
+
+        try {
+            metadata = GSON.fromJson(new String(Files.readAllBytes(sidecar), StandardCharsets.UTF_8), MediaMetadata.class);
+        } catch (Exception ex) {
+            log.error("Metadata read error:", ex);
+            return null;
+        }
+
+        cache.put(fileName, metadata);
+        return metadata;
+    }
+
+    private Path getSidecar(String fileName) {
+        return folder.resolve(fileName + ".json");
+    }
+}
@@ -23,12 +23,17 @@
 package me.ahornyai.imageshelter.utils;
 
 import lombok.experimental.UtilityClass;
+import org.apache.commons.io.IOUtils;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Base64;
 
 @UtilityClass
@@ -52,6 +57,25 @@ public class AESUtil {
         return Base64.getUrlEncoder().encodeToString(key.getEncoded());
     }
 
+    public OutputStream getEncryptStream(OutputStream outputStream, SecretKey key) throws Exception {
+        return new SegmentedGCMOutputStream(outputStream, key);
+    }
+
+    //Files uploaded before the segmented GCM format don't have the magic, those are still decrypted with CBC
+    public InputStream getDecryptStream(InputStream inputStream, SecretKey key) throws Exception {
+        if (!inputStream.markSupported()) inputStream = new BufferedInputStream(inputStream);
+
+        byte[] magic = new byte[SegmentedGCM.MAGIC.length];
+        inputStream.mark(magic.length);
+        int read = IOUtils.read(inputStream, magic);
+        inputStream.reset();
+
+        if (SegmentedGCM.hasMagic(magic, read))
+            return new SegmentedGCMInputStream(inputStream, key);
+
+        return new CipherInputStream(inputStream, getDecryptCipher(key));
+    }
+
     public Cipher getEncryptCipher(SecretKey key) throws Exception {
         return getCipher(key, Cipher.ENCRYPT_MODE);
     }
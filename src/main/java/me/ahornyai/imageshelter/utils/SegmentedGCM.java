@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.utils;
+
+import lombok.experimental.UtilityClass;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+
+/*
+ * Header: magic (4) | version (1) | segment size (4) | nonce prefix (7) | header tag (16)
+ * Then every segment of the plaintext is encrypted on its own: ciphertext (up to segment size) | tag (16)
+ *
+ * The nonce of a segment is the nonce prefix | segment index (4) | flag (1), the flag marks the last segment,
+ * so a file cut at a segment boundary is rejected too. The header tag is a GMAC of the first 16 bytes,
+ * which is checked before anything is decrypted, so a wrong key is detected without reading the file.
+ */
+@UtilityClass
+public class SegmentedGCM {
+    static final byte[] MAGIC = new byte[]{'E', 'S', 'G', 'C'};
+    static final byte VERSION = 1;
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final int NONCE_PREFIX_SIZE = 7;
+    static final int TAG_SIZE = 16;
+    static final int AAD_SIZE = MAGIC.length + 1 + 4 + NONCE_PREFIX_SIZE;
+    static final int HEADER_SIZE = AAD_SIZE + TAG_SIZE;
+
+    static final byte SEGMENT_FLAG = 0;
+    static final byte LAST_SEGMENT_FLAG = 1;
+    static final byte HEADER_FLAG = 2;
+
+    public boolean hasMagic(byte[] bytes, int length) {
+        if (length < MAGIC.length) return false;
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) return false;
+        }
+
+        return true;
+    }
+
+    Cipher initCipher(Cipher cipher, int mode, SecretKey key, byte[] aad, int counter, byte flag) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_PREFIX_SIZE + 5];
+        System.arraycopy(aad, AAD_SIZE - NONCE_PREFIX_SIZE, nonce, 0, NONCE_PREFIX_SIZE);
+        nonce[NONCE_PREFIX_SIZE] = (byte) (counter >>> 24);
+        nonce[NONCE_PREFIX_SIZE + 1] = (byte) (counter >>> 16);
+        nonce[NONCE_PREFIX_SIZE + 2] = (byte) (counter >>> 8);
+        nonce[NONCE_PREFIX_SIZE + 3] = (byte) counter;
+        nonce[NONCE_PREFIX_SIZE + 4] = flag;
+
+        cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(aad, 0, AAD_SIZE);
+
+        return cipher;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.utils;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import static me.ahornyai.imageshelter.utils.SegmentedGCM.*;
+
+public class SegmentedGCMInputStream extends FilterInputStream {
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] aad = new byte[AAD_SIZE];
+    private final byte[] plainBuffer;
+    private final byte[] cipherBuffer;
+    private int plainLength;
+    private int plainPosition;
+    private int counter;
+    private boolean lastSegmentRead;
+    private int lookahead = -1;
+
+    //Throws AEADBadTagException if the key is wrong, before anything is decrypted
+    public SegmentedGCMInputStream(InputStream in, SecretKey key) throws IOException, GeneralSecurityException {
+        super(in);
+        this.key = key;
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+        byte[] header = new byte[HEADER_SIZE];
+        if (IOUtils.read(in, header) != HEADER_SIZE || !hasMagic(header, HEADER_SIZE))
+            throw new IOException("Not a segmented GCM stream");
+        if (header[MAGIC.length] != VERSION)
+            throw new IOException("Unsupported segmented GCM version: " + header[MAGIC.length]);
+
+        int segmentSize = (header[MAGIC.length + 1] & 0xFF) << 24 | (header[MAGIC.length + 2] & 0xFF) << 16
+                | (header[MAGIC.length + 3] & 0xFF) << 8 | (header[MAGIC.length + 4] & 0xFF);
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE)
+            throw new IOException("Invalid segment size: " + segmentSize);
+
+        System.arraycopy(header, 0, aad, 0, AAD_SIZE);
+        initCipher(cipher, Cipher.DECRYPT_MODE, key, aad, 0, HEADER_FLAG).doFinal(header, AAD_SIZE, TAG_SIZE);
+
+        this.plainBuffer = new byte[segmentSize];
+        this.cipherBuffer = new byte[segmentSize + TAG_SIZE];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (plainPosition == plainLength && !readSegment()) return -1;
+
+        return plainBuffer[plainPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (plainPosition == plainLength && !readSegment()) return -1;
+
+        int n = Math.min(len, plainLength - plainPosition);
+        System.arraycopy(plainBuffer, plainPosition, b, off, n);
+        plainPosition += n;
+
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+
+        while (skipped < n && (plainPosition < plainLength || readSegment())) {
+            int step = (int) Math.min(n - skipped, plainLength - plainPosition);
+            plainPosition += step;
+            skipped += step;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return plainLength - plainPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean readSegment() throws IOException {
+        //Only the last segment can be empty, every other one is full
+        while (!lastSegmentRead) {
+            int length = 0;
+            if (lookahead != -1) cipherBuffer[length++] = (byte) lookahead;
+            length += IOUtils.read(in, cipherBuffer, length, cipherBuffer.length - length);
+
+            //The last segment is the one followed by the end of the file
+            lookahead = length == cipherBuffer.length ? in.read() : -1;
+            lastSegmentRead = lookahead == -1;
+
+            if (length < TAG_SIZE) throw new IOException("Truncated segmented GCM stream");
+
+            try {
+                initCipher(cipher, Cipher.DECRYPT_MODE, key, aad, counter++, lastSegmentRead ? LAST_SEGMENT_FLAG : SEGMENT_FLAG);
+                plainLength = cipher.doFinal(cipherBuffer, 0, length, plainBuffer, 0);
+                plainPosition = 0;
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("Segment authentication failed", ex);
+            }
+
+            if (plainLength > 0) return true;
+        }
+
+        return false;
+    }
+}
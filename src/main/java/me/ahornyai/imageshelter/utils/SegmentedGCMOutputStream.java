@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import static me.ahornyai.imageshelter.utils.SegmentedGCM.*;
+
+public class SegmentedGCMOutputStream extends FilterOutputStream {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] aad = new byte[AAD_SIZE];
+    private final byte[] plainBuffer;
+    private final byte[] cipherBuffer;
+    private int plainLength;
+    private int counter;
+    private boolean closed;
+
+    public SegmentedGCMOutputStream(OutputStream out, SecretKey key) throws IOException, GeneralSecurityException {
+        this(out, key, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentedGCMOutputStream(OutputStream out, SecretKey key, int segmentSize) throws IOException, GeneralSecurityException {
+        super(out);
+        this.key = key;
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.plainBuffer = new byte[segmentSize];
+        this.cipherBuffer = new byte[segmentSize + TAG_SIZE];
+
+        byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        RANDOM.nextBytes(noncePrefix);
+
+        System.arraycopy(MAGIC, 0, aad, 0, MAGIC.length);
+        aad[MAGIC.length] = VERSION;
+        aad[MAGIC.length + 1] = (byte) (segmentSize >>> 24);
+        aad[MAGIC.length + 2] = (byte) (segmentSize >>> 16);
+        aad[MAGIC.length + 3] = (byte) (segmentSize >>> 8);
+        aad[MAGIC.length + 4] = (byte) segmentSize;
+        System.arraycopy(noncePrefix, 0, aad, AAD_SIZE - NONCE_PREFIX_SIZE, NONCE_PREFIX_SIZE);
+
+        byte[] headerTag = initCipher(cipher, Cipher.ENCRYPT_MODE, key, aad, 0, HEADER_FLAG).doFinal();
+        out.write(aad);
+        out.write(headerTag);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (plainLength == plainBuffer.length) writeSegment(false);
+
+        plainBuffer[plainLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            //The segment is only written when more data comes, because the last one has to be flagged on close
+            if (plainLength == plainBuffer.length) writeSegment(false);
+
+            int n = Math.min(len, plainBuffer.length - plainLength);
+            System.arraycopy(b, off, plainBuffer, plainLength, n);
+            plainLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            writeSegment(true);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeSegment(boolean last) throws IOException {
+        try {
+            initCipher(cipher, Cipher.ENCRYPT_MODE, key, aad, counter++, last ? LAST_SEGMENT_FLAG : SEGMENT_FLAG);
+            int length = cipher.doFinal(plainBuffer, 0, plainLength, cipherBuffer, 0);
+
+            out.write(cipherBuffer, 0, length);
+            plainLength = 0;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Segment encryption failed", ex);
+        }
+    }
+}
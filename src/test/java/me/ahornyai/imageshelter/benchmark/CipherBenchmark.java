@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.benchmark;
+
+import lombok.extern.slf4j.Slf4j;
+import me.ahornyai.imageshelter.utils.AESUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+//Compares the legacy CBC format with the segmented GCM one, run from the test classpath: java me.ahornyai.imageshelter.benchmark.CipherBenchmark [MiB]
+@Slf4j
+public class CipherBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    public static void main(String... args) throws Exception {
+        int mebibytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        byte[] data = new byte[mebibytes * 1024 * 1024];
+        new Random(0).nextBytes(data);
+        SecretKey key = AESUtil.generateKey();
+
+        byte[] cbc = encryptCBC(data, key, new ByteArrayOutputStream()).toByteArray();
+        byte[] gcm = encryptGCM(data, key, new ByteArrayOutputStream()).toByteArray();
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            encryptCBC(data, key, NullOutputStream.NULL_OUTPUT_STREAM);
+            encryptGCM(data, key, NullOutputStream.NULL_OUTPUT_STREAM);
+            decrypt(new CipherInputStream(new ByteArrayInputStream(cbc), AESUtil.getDecryptCipher(key)));
+            decrypt(AESUtil.getDecryptStream(new ByteArrayInputStream(gcm), key));
+        }
+
+        long cbcEncrypt = 0, gcmEncrypt = 0, cbcDecrypt = 0, gcmDecrypt = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            encryptCBC(data, key, NullOutputStream.NULL_OUTPUT_STREAM);
+            cbcEncrypt += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            encryptGCM(data, key, NullOutputStream.NULL_OUTPUT_STREAM);
+            gcmEncrypt += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            decrypt(new CipherInputStream(new ByteArrayInputStream(cbc), AESUtil.getDecryptCipher(key)));
+            cbcDecrypt += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            decrypt(AESUtil.getDecryptStream(new ByteArrayInputStream(gcm), key));
+            gcmDecrypt += System.nanoTime() - start;
+        }
+
+        log.info("CBC encrypt: " + throughput(mebibytes, cbcEncrypt) + " MiB/s, decrypt: " + throughput(mebibytes, cbcDecrypt) + " MiB/s");
+        log.info("Segmented GCM encrypt: " + throughput(mebibytes, gcmEncrypt) + " MiB/s, decrypt: " + throughput(mebibytes, gcmDecrypt) + " MiB/s");
+    }
+
+    private static <T extends OutputStream> T encryptCBC(byte[] data, SecretKey key, T target) throws Exception {
+        OutputStream outputStream = new CipherOutputStream(target, AESUtil.getEncryptCipher(key));
+        copy(data, outputStream);
+
+        return target;
+    }
+
+    private static <T extends OutputStream> T encryptGCM(byte[] data, SecretKey key, T target) throws Exception {
+        OutputStream outputStream = AESUtil.getEncryptStream(target, key);
+        copy(data, outputStream);
+
+        return target;
+    }
+
+    //Same 4096 byte chunks as the upload endpoint
+    private static void copy(byte[] data, OutputStream outputStream) throws Exception {
+        IOUtils.copy(new ByteArrayInputStream(data), outputStream, 4096);
+        outputStream.close();
+    }
+
+    private static void decrypt(InputStream inputStream) throws Exception {
+        IOUtils.copy(inputStream, NullOutputStream.NULL_OUTPUT_STREAM, 4096);
+        inputStream.close();
+    }
+
+    private static long throughput(int mebibytes, long nanos) {
+        return Math.round(mebibytes * ROUNDS / (nanos / 1_000_000_000.0));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UploadLimiterTest {
+    @Test
+    public void admitsImmediately() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(2, 1, 1000, 0, 0);
+
+        assertTrue(limiter.tryAcquire(400));
+        assertTrue(limiter.tryAcquire(600));
+        assertEquals(2, limiter.getActiveUploads());
+        assertEquals(1000, limiter.getBytesInFlight());
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(1, 1, 1000, 0, 10_000);
+        assertTrue(limiter.tryAcquire(100));
+
+        long start = System.nanoTime();
+        assertFalse(limiter.tryAcquire(100));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, limiter.getRejectedUploads());
+    }
+
+    @Test
+    public void rejectsAfterTimeout() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(1, 1, 1000, 1, 100);
+        assertTrue(limiter.tryAcquire(100));
+
+        long start = System.nanoTime();
+        assertFalse(limiter.tryAcquire(100));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, limiter.getQueuedUploads());
+        assertEquals(1, limiter.getRejectedUploads());
+    }
+
+    @Test
+    public void admitsWaiterAfterRelease() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(1, 1, 1000, 1, 10_000);
+        assertTrue(limiter.tryAcquire(100));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiter = executor.submit(() -> limiter.tryAcquire(200));
+            awaitQueued(limiter, 1);
+
+            limiter.release(100);
+            assertTrue(waiter.get(5, TimeUnit.SECONDS));
+            assertEquals(1, limiter.getActiveUploads());
+            assertEquals(200, limiter.getBytesInFlight());
+            assertEquals(0, limiter.getQueuedUploads());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void admitsFittingUploadWhenQueueIsFull() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(4, 4, 1000, 1, 10_000);
+        assertTrue(limiter.tryAcquire(800));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            //Waits for the byte budget and fills the queue
+            Future<Boolean> waiter = executor.submit(() -> limiter.tryAcquire(500));
+            awaitQueued(limiter, 1);
+
+            long start = System.nanoTime();
+            assertTrue(limiter.tryAcquire(100));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            assertEquals(0, limiter.getRejectedUploads());
+
+            limiter.release(800);
+            assertTrue(waiter.get(5, TimeUnit.SECONDS));
+            assertEquals(600, limiter.getBytesInFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void waitsForInFlightBytes() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(4, 4, 1000, 0, 0);
+
+        assertTrue(limiter.tryAcquire(800));
+        assertFalse(limiter.tryAcquire(300));
+        limiter.release(800);
+        assertTrue(limiter.tryAcquire(300));
+    }
+
+    @Test
+    public void rejectsOversizedUploadEvenWhenIdle() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(4, 4, 1000, 4, 10_000);
+
+        assertTrue(limiter.accepts(1000));
+        assertFalse(limiter.accepts(1001));
+
+        long start = System.nanoTime();
+        assertFalse(limiter.tryAcquire(1001));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, limiter.getActiveUploads());
+        assertEquals(0, limiter.getBytesInFlight());
+    }
+
+    @Test
+    public void admitsFewerUploadsWhileReading() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(2, 1, 1000, 1, 10_000);
+        limiter.readStarted();
+        assertTrue(limiter.tryAcquire(100));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiter = executor.submit(() -> limiter.tryAcquire(100));
+            awaitQueued(limiter, 1);
+            assertEquals(1, limiter.getActiveReads());
+
+            limiter.readFinished();
+            assertTrue(waiter.get(5, TimeUnit.SECONDS));
+            assertEquals(2, limiter.getActiveUploads());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void countsAdmittedAndRejectedUploads() throws Exception {
+        UploadLimiter limiter = new UploadLimiter(1, 1, 1000, 0, 0);
+
+        assertTrue(limiter.tryAcquire(100));
+        assertFalse(limiter.tryAcquire(100));
+        assertFalse(limiter.tryAcquire(5000));
+        limiter.release(100);
+        assertTrue(limiter.tryAcquire(100));
+        limiter.release(100);
+
+        assertEquals(2, limiter.getAdmittedUploads());
+        assertEquals(2, limiter.getRejectedUploads());
+        assertEquals(0, limiter.getActiveUploads());
+        assertEquals(0, limiter.getBytesInFlight());
+        assertEquals(0, limiter.getQueuedUploads());
+    }
+
+    private static void awaitQueued(UploadLimiter limiter, int queued) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (limiter.getQueuedUploads() != queued) {
+            assertTrue("Upload was not queued", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.http.endpoints;
+
+import me.ahornyai.imageshelter.ImageShelter;
+import me.ahornyai.imageshelter.http.UploadLimiter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UploadEndpointTest {
+    private static final String SECRET = "test-secret";
+    private static final String BOUNDARY = "UploadEndpointTestBoundary";
+
+    private static File folder;
+    private static ImageShelter imageShelter;
+    private static int port;
+
+    @BeforeClass
+    public static void start() throws IOException {
+        folder = Files.createTempDirectory("everyshelter").toFile();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        File config = new File(folder, "config.toml");
+        FileUtils.writeStringToFile(config, "port = " + port + "\n"
+                + "secrets = [\"" + SECRET + "\"]\n"
+                + "allowedExtensions = [\"png\"]\n"
+                + "compressedExtensions = []\n"
+                + "uploadFolder = \"" + path("uploads") + "\"\n"
+                + "metadataFolder = \"" + path("metadata") + "\"\n"
+                + "encrypt = true\n"
+                + "maxConcurrentUploads = 1\n"
+                + "maxConcurrentUploadsWhileReading = 1\n"
+                + "maxUploadSize = 100000\n"
+                + "maxQueuedUploads = 0\n"
+                + "maxUploadSeconds = 2\n"
+                + "uploadRetryAfterSeconds = 7\n", StandardCharsets.UTF_8);
+
+        imageShelter = new ImageShelter(config);
+    }
+
+    @AfterClass
+    public static void stop() throws IOException {
+        imageShelter.onStop();
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Test
+    public void rejectsWithRetryAfterWhenNoSlotIsFree() throws Exception {
+        assertTrue(limiter().tryAcquire(1));
+        try {
+            HttpURLConnection connection = upload(SECRET, null, randomBytes(100));
+
+            assertEquals(503, connection.getResponseCode());
+            assertEquals("7", connection.getHeaderField("Retry-After"));
+            assertTrue(body(connection).contains("TOO_MANY_UPLOADS"));
+        } finally {
+            limiter().release(1);
+        }
+    }
+
+    @Test
+    public void checksHeaderSecretBeforeAdmission() throws Exception {
+        long admitted = limiter().getAdmittedUploads();
+        HttpURLConnection connection = upload("wrong", null, randomBytes(100));
+
+        assertEquals(403, connection.getResponseCode());
+        assertEquals(admitted, limiter().getAdmittedUploads());
+    }
+
+    @Test
+    public void releasesSlotAfterFailedUpload() throws Exception {
+        HttpURLConnection connection = upload(null, "wrong", randomBytes(100));
+
+        assertEquals(403, connection.getResponseCode());
+        assertEquals(0, limiter().getActiveUploads());
+        assertEquals(0, limiter().getBytesInFlight());
+
+        //Only one upload is allowed at once, so this only works if the slot was released
+        assertEquals(200, upload(null, SECRET, randomBytes(100)).getResponseCode());
+    }
+
+    @Test
+    public void uploadsWithFormSecretAndCountsViews() throws Exception {
+        byte[] content = randomBytes(5000);
+        HttpURLConnection connection = upload(null, SECRET, content);
+        assertEquals(200, connection.getResponseCode());
+
+        String body = body(connection);
+        String fileName = body.replaceAll(".*\"fileName\":\"([^\"]+)\".*", "$1");
+        String key = body.replaceAll(".*\"encryptionKey\":\"([^\"]+)\".*", "$1");
+
+        HttpURLConnection view = (HttpURLConnection) new URL("http://localhost:" + port + "/" + fileName + "/" + key).openConnection();
+        assertEquals(200, view.getResponseCode());
+        assertEquals(String.valueOf(content.length), view.getHeaderField("Content-Length"));
+        assertArrayEquals(content, IOUtils.toByteArray(view.getInputStream()));
+
+        //The read is finished on the server right after the last byte is sent
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (limiter().getActiveReads() != 0) {
+            assertTrue("The read was never finished", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void rejectsUploadWithoutLength() throws Exception {
+        String response = rawRequest("Transfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+
+        assertTrue(response, response.startsWith("HTTP/1.1 411"));
+    }
+
+    @Test
+    public void rejectsTooLargeUpload() throws Exception {
+        //Jetty only dispatches a request when the first part of its body arrives
+        String response = rawRequest("Content-Length: 100001\r\n\r\n--" + BOUNDARY + "\r\n");
+
+        assertTrue(response, response.startsWith("HTTP/1.1 413"));
+        assertEquals(0, limiter().getActiveUploads());
+    }
+
+    @Test
+    public void releasesSlotAfterTimeout() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            //Only the headers and part of the body are sent, the upload can only end with the timeout
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("POST /upload HTTP/1.1\r\nHost: localhost\r\nX-Secret: " + SECRET + "\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\nContent-Length: 50000\r\n\r\n"
+                    + "--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+
+            awaitActiveUploads(1);
+            awaitActiveUploads(0);
+            assertEquals(0, limiter().getBytesInFlight());
+        }
+    }
+
+    @Test
+    public void statusRequiresSecret() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/status").openConnection();
+        assertEquals(403, connection.getResponseCode());
+
+        connection = (HttpURLConnection) new URL("http://localhost:" + port + "/status").openConnection();
+        connection.setRequestProperty("X-Secret", SECRET);
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(body(connection).contains("\"maxConcurrentUploads\":1"));
+    }
+
+    private static UploadLimiter limiter() {
+        return ImageShelter.getInstance().getHttpHandler().getUploadLimiter();
+    }
+
+    private static HttpURLConnection upload(String headerSecret, String formSecret, byte[] content) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (formSecret != null) {
+            body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"secret\"\r\n\r\n" + formSecret + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"image\"; filename=\"test.png\"\r\n"
+                + "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/upload").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.size());
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        if (headerSecret != null) connection.setRequestProperty("X-Secret", headerSecret);
+
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            body.writeTo(outputStream);
+        }
+
+        return connection;
+    }
+
+    //For requests HttpURLConnection won't send, like a Content-Length without the whole body
+    private static String rawRequest(String lastHeaders) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("POST /upload HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\nX-Secret: " + SECRET + "\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n" + lastHeaders).getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+        }
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        InputStream inputStream = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+
+        return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+    }
+
+    private static void awaitActiveUploads(int activeUploads) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (limiter().getActiveUploads() != activeUploads) {
+            assertTrue("Active uploads never became " + activeUploads, System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String path(String child) {
+        return new File(folder, child).getAbsolutePath().replace('\\', '/');
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+
+        return bytes;
+    }
+}
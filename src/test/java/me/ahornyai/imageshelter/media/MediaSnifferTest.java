@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.media;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MediaSnifferTest {
+    @Test
+    public void png() throws IOException {
+        ByteBuffer png = ByteBuffer.allocate(33);
+        png.put(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A});
+        png.putInt(13).put(ascii("IHDR")).putInt(640).putInt(480);
+
+        MediaMetadata metadata = sniff(png.array());
+        assertEquals("image/png", metadata.getContentType());
+        assertDimensions(metadata, 640, 480);
+        assertEquals(33, metadata.getOriginalSize());
+    }
+
+    @Test
+    public void gif() throws IOException {
+        ByteBuffer gif = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN);
+        gif.put(ascii("GIF89a")).putShort((short) 320).putShort((short) 200);
+
+        MediaMetadata metadata = sniff(gif.array());
+        assertEquals("image/gif", metadata.getContentType());
+        assertDimensions(metadata, 320, 200);
+    }
+
+    @Test
+    public void bmp() throws IOException {
+        MediaMetadata metadata = sniff(bmp(40, 800, -600));
+        assertEquals("image/bmp", metadata.getContentType());
+        assertDimensions(metadata, 800, 600);
+    }
+
+    @Test
+    public void bmpCoreHeader() throws IOException {
+        ByteBuffer bmp = ByteBuffer.wrap(bmp(12, 0, 0)).order(ByteOrder.LITTLE_ENDIAN);
+        bmp.putShort(18, (short) 100).putShort(20, (short) 50);
+
+        MediaMetadata metadata = sniff(bmp.array());
+        assertEquals("image/bmp", metadata.getContentType());
+        assertDimensions(metadata, 100, 50);
+    }
+
+    @Test
+    public void jpeg() throws IOException {
+        ByteBuffer jpeg = ByteBuffer.allocate(40);
+        jpeg.put(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        //APP0 segment, which has to be skipped
+        jpeg.put(new byte[]{(byte) 0xFF, (byte) 0xE0}).putShort((short) 16).put(ascii("JFIF")).put(new byte[10]);
+        //SOF2 (progressive): precision, height, width
+        jpeg.put(new byte[]{(byte) 0xFF, (byte) 0xC2}).putShort((short) 11).put((byte) 8).putShort((short) 1080).putShort((short) 1920);
+
+        MediaMetadata metadata = sniff(jpeg.array());
+        assertEquals("image/jpeg", metadata.getContentType());
+        assertDimensions(metadata, 1920, 1080);
+    }
+
+    @Test
+    public void webpLossy() throws IOException {
+        ByteBuffer webp = webp("VP8 ");
+        webp.putShort(26, (short) 1024).putShort(28, (short) 768);
+
+        assertDimensions(sniff(webp.array()), 1024, 768);
+    }
+
+    @Test
+    public void webpLossless() throws IOException {
+        ByteBuffer webp = webp("VP8L");
+        //14 bit width - 1 and height - 1 after the 0x2F signature
+        int bits = (300 - 1) | (150 - 1) << 14;
+        webp.putInt(21, bits);
+
+        MediaMetadata metadata = sniff(webp.array());
+        assertEquals("image/webp", metadata.getContentType());
+        assertDimensions(metadata, 300, 150);
+    }
+
+    @Test
+    public void webpExtended() throws IOException {
+        ByteBuffer webp = webp("VP8X");
+        webp.put(24, (byte) 0x3F).put(25, (byte) 0x1F).put(27, (byte) 0xFF);
+
+        assertDimensions(sniff(webp.array()), 8000, 256);
+    }
+
+    @Test
+    public void mp4DurationVersion0() throws IOException {
+        MediaMetadata metadata = sniff(concat(ftyp("isom"), moov(mvhd(0, 1000, 12345)), box("mdat", new byte[1000])));
+        assertEquals("video/mp4", metadata.getContentType());
+        assertEquals(Long.valueOf(12345), metadata.getDurationMillis());
+    }
+
+    @Test
+    public void mp4DurationVersion1() throws IOException {
+        MediaMetadata metadata = sniff(concat(ftyp("isom"), moov(mvhd(1, 600, 600L * 5_000_000_000L))));
+        assertEquals(Long.valueOf(5_000_000_000_000L), metadata.getDurationMillis());
+    }
+
+    @Test
+    public void unrepresentableDurationIsUnknown() throws IOException {
+        //Negative as a signed long
+        assertNull(sniff(concat(ftyp("isom"), moov(mvhd(1, 1000, -1L)))).getDurationMillis());
+        //Overflows when converted to milliseconds
+        assertNull(sniff(concat(ftyp("isom"), moov(mvhd(1, 1000, Long.MAX_VALUE / 10)))).getDurationMillis());
+    }
+
+    @Test
+    public void skipIgnoresNonPositiveCounts() throws IOException {
+        MediaSniffer sniffer = new MediaSniffer(new ByteArrayInputStream(new byte[10]));
+
+        assertEquals(0, sniffer.skip(-1));
+        assertEquals(0, sniffer.skip(0));
+        assertEquals(10, sniffer.skip(100));
+        assertEquals(10, sniffer.toMetadata(null).getOriginalSize());
+    }
+
+    @Test
+    public void moovAfterMdat() throws IOException {
+        //Bigger than the sniffed head, and with a 64 bit box size
+        byte[] payload = new byte[200 * 1024];
+        ByteBuffer mdat = ByteBuffer.allocate(16 + payload.length);
+        mdat.putInt(1).put(ascii("mdat")).putLong(16 + payload.length).put(payload);
+        byte[] movie = concat(ftyp("qt  "), mdat.array(), box("free", new byte[8]), moov(concat(box("udta", new byte[20]), mvhd(0, 90000, 90000 * 60))));
+
+        MediaMetadata metadata = sniff(movie);
+        assertEquals("video/quicktime", metadata.getContentType());
+        assertEquals(Long.valueOf(60000), metadata.getDurationMillis());
+        assertEquals(movie.length, metadata.getOriginalSize());
+
+        //Box headers split between reads
+        assertEquals(Long.valueOf(60000), sniff(new TrickleInputStream(new ByteArrayInputStream(movie)), null).getDurationMillis());
+    }
+
+    @Test
+    public void heifIsNotVideo() throws IOException {
+        assertEquals("image/heic", sniff(ftyp("heic")).getContentType());
+        assertEquals("image/avif", sniff(ftyp("avif")).getContentType());
+    }
+
+    @Test
+    public void textIsNotSniffed() throws IOException {
+        MediaMetadata metadata = sniff(new ByteArrayInputStream(ascii("BMW and Mercedes are both car manufacturers.\n")), "text/plain");
+        assertEquals("text/plain", metadata.getContentType());
+        assertNull(metadata.getWidth());
+        assertNull(metadata.getDurationMillis());
+
+        assertEquals("text/markdown", sniff(new ByteArrayInputStream(ascii("# Hello\n\nftyp is not at offset 4")), "text/markdown").getContentType());
+        assertEquals("text/plain", sniff(new ByteArrayInputStream(new byte[0]), "text/plain").getContentType());
+    }
+
+    private static MediaMetadata sniff(byte[] bytes) throws IOException {
+        return sniff(new ByteArrayInputStream(bytes), null);
+    }
+
+    private static MediaMetadata sniff(InputStream inputStream, String fallbackContentType) throws IOException {
+        MediaSniffer sniffer = new MediaSniffer(inputStream);
+        IOUtils.copy(sniffer, NullOutputStream.NULL_OUTPUT_STREAM, 4096);
+
+        return sniffer.toMetadata(fallbackContentType);
+    }
+
+    private static void assertDimensions(MediaMetadata metadata, int width, int height) {
+        assertEquals(Integer.valueOf(width), metadata.getWidth());
+        assertEquals(Integer.valueOf(height), metadata.getHeight());
+    }
+
+    private static byte[] bmp(int dibHeaderSize, int width, int height) {
+        ByteBuffer bmp = ByteBuffer.allocate(54).order(ByteOrder.LITTLE_ENDIAN);
+        bmp.put(ascii("BM")).putInt(54).putInt(0).putInt(54).putInt(dibHeaderSize).putInt(width).putInt(height);
+
+        return bmp.array();
+    }
+
+    private static ByteBuffer webp(String chunk) {
+        ByteBuffer webp = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        webp.put(ascii("RIFF")).putInt(32).put(ascii("WEBP")).put(ascii(chunk));
+
+        return webp;
+    }
+
+    private static byte[] ftyp(String brand) {
+        return box("ftyp", concat(ascii(brand), new byte[4], ascii(brand)));
+    }
+
+    private static byte[] moov(byte[] children) {
+        return box("moov", children);
+    }
+
+    private static byte[] mvhd(int version, int timescale, long duration) {
+        ByteBuffer mvhd = ByteBuffer.allocate(version == 1 ? 112 : 100);
+        mvhd.putInt(version << 24);
+        if (version == 1) {
+            mvhd.putLong(0).putLong(0).putInt(timescale).putLong(duration);
+        } else {
+            mvhd.putInt(0).putInt(0).putInt(timescale).putInt((int) duration);
+        }
+
+        return box("mvhd", mvhd.array());
+    }
+
+    private static byte[] box(String type, byte[] payload) {
+        return ByteBuffer.allocate(8 + payload.length).putInt(8 + payload.length).put(ascii(type)).put(payload).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] part : parts) outputStream.write(part, 0, part.length);
+
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static class TrickleInputStream extends FilterInputStream {
+        private int next = 1;
+
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            next = next % 7 + 1;
+            return super.read(b, off, Math.min(len, next));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 Alex Hornyai
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package me.ahornyai.imageshelter.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static me.ahornyai.imageshelter.utils.SegmentedGCM.*;
+import static org.junit.Assert.*;
+
+public class SegmentedGCMTest {
+    private static final int SEGMENT_SIZE = 64;
+
+    @Test
+    public void roundTripsAroundSegmentBoundaries() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+
+        for (int length : new int[]{0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1,
+                3 * SEGMENT_SIZE - 1, 3 * SEGMENT_SIZE, 3 * SEGMENT_SIZE + 1}) {
+            byte[] data = randomBytes(length);
+            byte[] encrypted = encrypt(data, key, SEGMENT_SIZE);
+
+            assertEquals("Length " + length, expectedLength(length, SEGMENT_SIZE), encrypted.length);
+            assertArrayEquals("Length " + length, data, decrypt(encrypted, key));
+        }
+    }
+
+    @Test
+    public void roundTripsWithDefaultSegmentSize() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+
+        for (int length : new int[]{0, DEFAULT_SEGMENT_SIZE, 2 * DEFAULT_SEGMENT_SIZE + 1}) {
+            byte[] data = randomBytes(length);
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            try (OutputStream outputStream = AESUtil.getEncryptStream(encrypted, key)) {
+                outputStream.write(data);
+            }
+
+            assertArrayEquals(data, IOUtils.toByteArray(AESUtil.getDecryptStream(new ByteArrayInputStream(encrypted.toByteArray()), key)));
+        }
+    }
+
+    @Test
+    public void singleByteWritesAndReads() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] data = randomBytes(2 * SEGMENT_SIZE + 5);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new SegmentedGCMOutputStream(encrypted, key, SEGMENT_SIZE)) {
+            for (byte b : data) outputStream.write(b);
+        }
+
+        SegmentedGCMInputStream inputStream = new SegmentedGCMInputStream(new ByteArrayInputStream(encrypted.toByteArray()), key);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != -1) decrypted.write(b);
+
+        assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void wrongKeyFailsAtHeader() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(100), AESUtil.generateKey(), SEGMENT_SIZE);
+
+        new SegmentedGCMInputStream(new ByteArrayInputStream(encrypted), AESUtil.generateKey());
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void modifiedHeaderFails() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] encrypted = encrypt(randomBytes(100), key, SEGMENT_SIZE);
+        //Last byte of the nonce prefix
+        encrypted[AAD_SIZE - 1] ^= 1;
+
+        new SegmentedGCMInputStream(new ByteArrayInputStream(encrypted), key);
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedVersionFails() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] encrypted = encrypt(randomBytes(100), key, SEGMENT_SIZE);
+        encrypted[MAGIC.length] = 2;
+
+        new SegmentedGCMInputStream(new ByteArrayInputStream(encrypted), key);
+    }
+
+    @Test
+    public void truncationAtSegmentBoundaryFails() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] encrypted = encrypt(randomBytes(3 * SEGMENT_SIZE), key, SEGMENT_SIZE);
+
+        assertDecryptFails(Arrays.copyOf(encrypted, HEADER_SIZE + 2 * (SEGMENT_SIZE + TAG_SIZE)), key);
+        assertDecryptFails(Arrays.copyOf(encrypted, HEADER_SIZE + SEGMENT_SIZE + TAG_SIZE), key);
+        assertDecryptFails(Arrays.copyOf(encrypted, HEADER_SIZE), key);
+    }
+
+    @Test
+    public void truncationInsideSegmentFails() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] encrypted = encrypt(randomBytes(3 * SEGMENT_SIZE), key, SEGMENT_SIZE);
+
+        assertDecryptFails(Arrays.copyOf(encrypted, encrypted.length - 1), key);
+        assertDecryptFails(Arrays.copyOf(encrypted, HEADER_SIZE + SEGMENT_SIZE + TAG_SIZE + 10), key);
+    }
+
+    @Test
+    public void flippedBitFails() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] encrypted = encrypt(randomBytes(3 * SEGMENT_SIZE), key, SEGMENT_SIZE);
+
+        for (int position : new int[]{HEADER_SIZE, HEADER_SIZE + SEGMENT_SIZE + 3, encrypted.length - 1}) {
+            byte[] modified = encrypted.clone();
+            modified[position] ^= 1;
+
+            assertDecryptFails(modified, key);
+        }
+    }
+
+    @Test
+    public void swappedSegmentsFail() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] encrypted = encrypt(randomBytes(3 * SEGMENT_SIZE), key, SEGMENT_SIZE);
+        int segment = SEGMENT_SIZE + TAG_SIZE;
+
+        byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, HEADER_SIZE, swapped, HEADER_SIZE + segment, segment);
+        System.arraycopy(encrypted, HEADER_SIZE + segment, swapped, HEADER_SIZE, segment);
+
+        assertDecryptFails(swapped, key);
+    }
+
+    @Test
+    public void legacyCBCStillDecrypts() throws Exception {
+        SecretKey key = AESUtil.generateKey();
+        byte[] data = randomBytes(1000);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new CipherOutputStream(encrypted, AESUtil.getEncryptCipher(key))) {
+            outputStream.write(data);
+        }
+
+        assertArrayEquals(data, IOUtils.toByteArray(AESUtil.getDecryptStream(new ByteArrayInputStream(encrypted.toByteArray()), key)));
+    }
+
+    private static byte[] encrypt(byte[] data, SecretKey key, int segmentSize) throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new SegmentedGCMOutputStream(encrypted, key, segmentSize)) {
+            IOUtils.copy(new ByteArrayInputStream(data), outputStream, 100);
+        }
+
+        return encrypted.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] encrypted, SecretKey key) throws Exception {
+        return IOUtils.toByteArray(new SegmentedGCMInputStream(new ByteArrayInputStream(encrypted), key));
+    }
+
+    private static void assertDecryptFails(byte[] encrypted, SecretKey key) throws Exception {
+        try {
+            decrypt(encrypted, key);
+            fail("Modified stream was decrypted");
+        } catch (IOException expected) {
+            //Authentication failures are reported while reading
+        }
+    }
+
+    private static int expectedLength(int length, int segmentSize) {
+        int segments = Math.max(1, (length + segmentSize - 1) / segmentSize);
+
+        return HEADER_SIZE + length + segments * TAG_SIZE;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+
+        return bytes;
+    }
+}